@@ -29,12 +29,19 @@ import okhttp3.FormBody;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
+import okio.BufferedSink;
 import org.json.JSONObject;
 
 
@@ -48,20 +55,28 @@ import org.json.JSONException;
  */
 public class HttpTestQuality {
 
+    private static final int UPLOAD_ATTEMPTS = 3;
+    private static final long UPLOAD_RETRY_DELAY_MS = 5000;
+    private static final int UPLOAD_READ_AHEAD = 4;
     /**
      *
      */
     private final OkHttpClient client; // = new OkHttpClient();
+    private final long uploadRetryDelay;
     private String tqUrl;
     private String authorization;
     
     public HttpTestQuality() {
+        this(UPLOAD_RETRY_DELAY_MS);
+    }
+
+    HttpTestQuality(long uploadRetryDelay) {
         this.client = new OkHttpClient.Builder()
                 .readTimeout(600, TimeUnit.SECONDS)
                 .writeTimeout(600, TimeUnit.SECONDS)
                 .build();
         //this.client.setConnectTimeout(30, TimeUnit.SECONDS);
-        
+        this.uploadRetryDelay = uploadRetryDelay;
     }
     
     public boolean isConnected() {
@@ -141,7 +156,8 @@ public class HttpTestQuality {
         }
     }
     
-    public TestResult uploadFiles(List<File> files, String planId, String milestoneId) throws IOException, HttpException {
+    public TestResult uploadFiles(List<File> files, String planId, String milestoneId, PrintStream logger) 
+            throws IOException, HttpException {
         if (files.isEmpty()) {
             throw new HttpException("No files selected for upload");
         }
@@ -154,11 +170,12 @@ public class HttpTestQuality {
         if (!StringUtils.isBlank(milestoneId) && !milestoneId.equals("-1")) {
             requestBodyBuilder.addFormDataPart("milestone_id", milestoneId);
         }
-        for (File file : files) {
-            RequestBody fileBody = RequestBody.create(mediaType, file);
-            requestBodyBuilder.addFormDataPart("files[]", file.getName(), fileBody);
+        ReadAheadFileBodies fileBodies = new ReadAheadFileBodies(mediaType, files, UPLOAD_READ_AHEAD);
+        for (int i = 0; i < files.size(); i++) {
+            RequestBody fileBody = fileBodies.body(i);
+            requestBodyBuilder.addFormDataPart("files[]", files.get(i).getName(), fileBody);
         }
-        MultipartBody requestBody = requestBodyBuilder.build();
+        SentBody requestBody = new SentBody(requestBodyBuilder.build());
         final Request request = new Request.Builder()
                .header("Accept", "application/json")
                .addHeader("Authorization", this.authorization)
@@ -166,12 +183,11 @@ public class HttpTestQuality {
                .post(requestBody)
                .build();
         
-        long start = System.nanoTime();
-        Response response = this.client.newCall(request).execute();
-        long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
-
-        if (!response.isSuccessful()) {
-            throw new HttpException(response, time, response.body().string());
+        Response response;
+        try {
+            response = executeUpload(request, requestBody, logger);
+        } finally {
+            fileBodies.close();
         }
         
         TestResult result = new TestResult();
@@ -203,4 +219,99 @@ public class HttpTestQuality {
         }
         return result;
     }
+
+    /**
+     * The junit_xml endpoint only accepts the whole report set in one POST,
+     * so a connection dropped part way through is retried from the start,
+     * waiting a little longer before each new attempt. Once the body has
+     * been sent the server may already have taken the reports, so later
+     * failures are not retried to avoid creating a duplicate run.
+     */
+    private Response executeUpload(Request request, SentBody body, PrintStream logger) 
+            throws IOException, HttpException {
+        // retries are decided here, not by OkHttp which would ignore body.isSent()
+        OkHttpClient uploadClient = this.client.newBuilder()
+                .retryOnConnectionFailure(false)
+                .build();
+        long delay = this.uploadRetryDelay;
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            Response response;
+            try {
+                response = uploadClient.newCall(request).execute();
+            } catch (IOException e) {
+                if (!isTransient(e) || body.isSent() || attempt >= UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+                logger.println(String.format("TestQuality upload attempt %d of %d failed (%s), retrying in %dms", 
+                        attempt, UPLOAD_ATTEMPTS, e, delay));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException abort = new InterruptedIOException("Upload interrupted");
+                    abort.initCause(ie);
+                    throw abort;
+                }
+                delay *= 2;
+                continue;
+            }
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            if (!response.isSuccessful()) {
+                throw new HttpException(response, time, response.body().string());
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Only failures of the connection itself are worth another attempt.
+     * Report files that cannot be read, protocol and TLS errors and
+     * interrupts such as a build abort would fail the same way again.
+     */
+    private static boolean isTransient(IOException e) {
+        if (e instanceof ProtocolException) {
+            // also thrown as "unexpected end of stream" when a report changed size
+            return false;
+        }
+        if (e instanceof SocketException || e instanceof SocketTimeoutException || e instanceof EOFException) {
+            return true;
+        }
+        return e.getMessage() != null && e.getMessage().startsWith("unexpected end of stream");
+    }
+
+    /**
+     * Remembers whether the last attempt wrote the whole request body.
+     */
+    private static final class SentBody extends RequestBody {
+        private final RequestBody delegate;
+        private volatile boolean sent;
+
+        SentBody(RequestBody delegate) {
+            this.delegate = delegate;
+        }
+
+        boolean isSent() {
+            return this.sent;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return this.delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return this.delegate.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            this.sent = false;
+            this.delegate.writeTo(sink);
+            sink.flush();
+            this.sent = true;
+        }
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 BitModern.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.testquality.jenkins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request bodies for a list of files that are written one after another,
+ * as in a multipart upload. While one file is being written the next few
+ * are already being read on background threads into a fixed pool of
+ * buffers, so slow disk or network filesystem reads overlap the upload.
+ */
+final class ReadAheadFileBodies implements Closeable {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFERS_PER_FILE = 4;
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final MediaType mediaType;
+    private final List<File> files;
+    private final int readAhead;
+    private final ExecutorService executor;
+    private final BlockingQueue<ByteBuffer> pool;
+    private Pass pass;
+    private boolean closed;
+
+    ReadAheadFileBodies(MediaType mediaType, List<File> files, int readAhead) {
+        this.mediaType = mediaType;
+        this.files = new ArrayList<>(files);
+        this.readAhead = Math.max(1, Math.min(readAhead, files.size()));
+        this.executor = Executors.newFixedThreadPool(this.readAhead, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TestQuality upload read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        int size = this.readAhead * BUFFERS_PER_FILE;
+        this.pool = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            this.pool.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+    }
+
+    public RequestBody body(final int index) {
+        final File file = this.files.get(index);
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return mediaType;
+            }
+
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                startPart(index).writeTo(sink);
+            }
+        };
+    }
+
+    synchronized int idleBuffers() {
+        return this.pool.size();
+    }
+
+    /**
+     * Parts of the last pass that were already started stay readable after
+     * closing, but only to report that they were cancelled.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.pass != null) {
+            this.pass.cancel();
+        }
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Writing the first file means the whole body is being (re)sent, for
+     * example when a failed upload is retried, so any earlier pass is
+     * abandoned and its buffers go back to the pool before reading starts
+     * again from the first file.
+     */
+    private synchronized Part startPart(int index) throws IOException {
+        if (this.closed) {
+            if (this.pass == null || index >= this.pass.started) {
+                throw new InterruptedIOException("Read-ahead closed before " + this.files.get(index));
+            }
+            return this.pass.parts.get(index);
+        }
+        if (index == 0 || this.pass == null) {
+            if (this.pass != null) {
+                this.pass.cancel();
+            }
+            this.pass = new Pass();
+        }
+        this.pass.startUpTo(index + this.readAhead - 1);
+        return this.pass.parts.get(index);
+    }
+
+    /**
+     * One write of the file list. Files before the one being written are
+     * finished and at most readAhead files are started, each holding at
+     * most BUFFERS_PER_FILE buffers, so the pool can never run dry.
+     */
+    private final class Pass {
+        private final List<Part> parts = new ArrayList<>();
+        private int started;
+
+        Pass() {
+            for (File file : files) {
+                this.parts.add(new Part(file, pool));
+            }
+        }
+
+        void startUpTo(int index) {
+            int last = Math.min(index, this.parts.size() - 1);
+            while (this.started <= last) {
+                Part part = this.parts.get(this.started++);
+                part.reader = executor.submit(part);
+            }
+        }
+
+        void cancel() {
+            for (int i = 0; i < this.started; i++) {
+                this.parts.get(i).cancel();
+            }
+        }
+    }
+
+    private static final class Part implements Runnable {
+        private final File file;
+        private final BlockingQueue<ByteBuffer> pool;
+        private final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<>();
+        private final Semaphore permits = new Semaphore(BUFFERS_PER_FILE);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+        private Future<?> reader;
+
+        Part(File file, BlockingQueue<ByteBuffer> pool) {
+            this.file = file;
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return;
+            }
+            ByteBuffer buffer = null;
+            try (FileInputStream in = new FileInputStream(this.file)) {
+                FileChannel channel = in.getChannel();
+                while (true) {
+                    this.permits.acquire();
+                    buffer = this.pool.take();
+                    buffer.clear();
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    this.chunks.add(buffer);
+                    buffer = null;
+                }
+            } catch (IOException e) {
+                this.failure = e;
+            } catch (InterruptedException e) {
+                this.failure = new InterruptedIOException("Interrupted while reading " + this.file);
+                Thread.currentThread().interrupt();
+            } finally {
+                if (buffer != null) {
+                    recycle(buffer);
+                }
+                this.chunks.add(EOF);
+                this.done.countDown();
+            }
+        }
+
+        /**
+         * Stops the reader, waits for it to let go of its buffers and
+         * returns every queued chunk to the pool. A reader cancelled before
+         * it ran never queues EOF itself, so the part is ended here with a
+         * failure for any writer still on it.
+         */
+        void cancel() {
+            if (!this.claimed.compareAndSet(false, true)) {
+                this.reader.cancel(true);
+                awaitReader();
+            }
+            ByteBuffer buffer;
+            while ((buffer = this.chunks.poll()) != null) {
+                if (buffer != EOF) {
+                    recycle(buffer);
+                }
+            }
+            this.failure = new InterruptedIOException("Cancelled reading " + this.file);
+            this.chunks.add(EOF);
+        }
+
+        private void awaitReader() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void writeTo(BufferedSink sink) throws IOException {
+            while (true) {
+                ByteBuffer buffer;
+                try {
+                    buffer = this.chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading " + this.file);
+                }
+                if (buffer == EOF) {
+                    if (this.failure != null) {
+                        throw this.failure;
+                    }
+                    return;
+                }
+                try {
+                    sink.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } finally {
+                    recycle(buffer);
+                }
+            }
+        }
+
+        private void recycle(ByteBuffer buffer) {
+            this.pool.add(buffer);
+            this.permits.release();
+        }
+    }
+}
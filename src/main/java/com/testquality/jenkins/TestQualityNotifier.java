@@ -32,6 +32,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -127,7 +128,8 @@ public class TestQualityNotifier extends Notifier {
                     this.getDescriptor().getUsername(),
                     this.getDescriptor().getPassword(),
                     this.plan,
-                    this.milestone));
+                    this.milestone,
+                    listener));
         
             long time = System.currentTimeMillis() - timeOnMaster;
             if (result.total > 0) {
@@ -161,6 +163,7 @@ public class TestQualityNotifier extends Notifier {
         private final String password;
         private final String plan;
         private final String milestone;
+        private final TaskListener listener;
         
         private ParseResultCallable(String testResults, 
                 long buildTime, 
@@ -169,7 +172,8 @@ public class TestQualityNotifier extends Notifier {
                 String username,
                 String password,
                 String plan,
-                String milestone) {
+                String milestone,
+                TaskListener listener) {
             this.testResults = testResults;
             this.buildTime = buildTime;
             this.nowMaster = nowMaster; 
@@ -178,6 +182,7 @@ public class TestQualityNotifier extends Notifier {
             this.password = password;
             this.plan = plan;
             this.milestone = milestone;
+            this.listener = listener;
         }
 
         @Override
@@ -205,7 +210,7 @@ public class TestQualityNotifier extends Notifier {
                 }
                 HttpTestQuality testQuality = new HttpTestQuality();
                 testQuality.connect(this.url, this.username, this.password);
-                return testQuality.uploadFiles(listFiles, this.plan, this.milestone);
+                return testQuality.uploadFiles(listFiles, this.plan, this.milestone, this.listener.getLogger());
             } 
             return result;
         }
@@ -0,0 +1,258 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 BitModern.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.testquality.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTestQualityTest {
+
+    /** Large enough that the client is still writing when the server resets. */
+    private static final int REPORT_SIZE = 16 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeServer server;
+    private List<File> files;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeServer();
+        byte[] content = new byte[REPORT_SIZE];
+        new Random(42).nextBytes(content);
+        File file = folder.newFile("report.xml");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        files = Collections.singletonList(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test(timeout = 60000)
+    public void resendsBodyAfterResetMidway() throws Exception {
+        server.uploads(Upload.RESET_MIDWAY, Upload.RESPOND);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        TestResult result = connect(10).uploadFiles(files, "1", "-1", new PrintStream(log, true));
+
+        assertEquals(7, result.total);
+        List<byte[]> bodies = server.bodies();
+        assertEquals(2, bodies.size());
+        byte[] partial = bodies.get(0);
+        byte[] full = bodies.get(1);
+        assertTrue(partial.length < full.length);
+        assertTrue(full.length > REPORT_SIZE);
+        assertArrayEquals(partial, Arrays.copyOf(full, partial.length));
+        assertTrue(log.toString().contains("attempt 1 of 3 failed"));
+    }
+
+    @Test(timeout = 60000)
+    public void doesNotRetryOnceBodyWasSent() throws Exception {
+        server.uploads(Upload.DROP_AFTER_BODY, Upload.RESPOND);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        try {
+            connect(10).uploadFiles(files, "1", "-1", new PrintStream(log, true));
+            fail("expected the dropped connection to reach the caller");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(1, server.bodies().size());
+        assertFalse(log.toString().contains("failed"));
+    }
+
+    @Test(timeout = 60000)
+    public void interruptDuringBackoffEndsUpload() throws Exception {
+        server.uploads(Upload.RESET_MIDWAY, Upload.RESPOND);
+        final HttpTestQuality testQuality = connect(60000);
+        final Throwable[] thrown = new Throwable[1];
+        Thread upload = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    testQuality.uploadFiles(files, "1", "-1", new PrintStream(new ByteArrayOutputStream(), true));
+                } catch (Throwable e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        upload.start();
+        while (upload.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(upload.isAlive());
+            Thread.sleep(10);
+        }
+        upload.interrupt();
+        upload.join();
+
+        assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+        assertEquals(1, server.bodies().size());
+    }
+
+    private HttpTestQuality connect(long retryDelay) throws IOException {
+        HttpTestQuality testQuality = new HttpTestQuality(retryDelay);
+        testQuality.connect(server.url(), "user", "secret");
+        return testQuality;
+    }
+
+    private enum Upload { RESET_MIDWAY, DROP_AFTER_BODY, RESPOND }
+
+    /**
+     * Answers the token request and treats each upload as scripted, one
+     * request per connection, recording the body bytes it read.
+     */
+    private static final class FakeServer implements Runnable, Closeable {
+        private final ServerSocket socket = new ServerSocket();
+        private final Queue<Upload> uploads = new LinkedList<>();
+        private final List<byte[]> bodies = new ArrayList<>();
+        private final Thread thread;
+
+        FakeServer() throws IOException {
+            socket.setReceiveBufferSize(64 * 1024);
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            thread = new Thread(this, "fake TestQuality");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + socket.getLocalPort();
+        }
+
+        synchronized void uploads(Upload... script) {
+            uploads.addAll(Arrays.asList(script));
+        }
+
+        synchronized List<byte[]> bodies() {
+            return new ArrayList<>(bodies);
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    serve(connection);
+                } catch (IOException e) {
+                    // closed by the test or a client that gave up
+                }
+            }
+        }
+
+        private void serve(Socket connection) throws IOException {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            String requestLine = readLine(in);
+            int contentLength = 0;
+            for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                if (header.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(header.substring(15).trim());
+                }
+            }
+            if (requestLine.contains("/api/oauth/access_token")) {
+                in.readFully(new byte[contentLength]);
+                respond(out, "{\"access_token\":\"token\"}");
+                return;
+            }
+            Upload upload;
+            synchronized (this) {
+                upload = uploads.remove();
+            }
+            byte[] body = new byte[upload == Upload.RESET_MIDWAY ? contentLength / 2 : contentLength];
+            in.readFully(body);
+            synchronized (this) {
+                bodies.add(body);
+            }
+            if (upload == Upload.RESET_MIDWAY) {
+                connection.setSoLinger(true, 0);
+            } else if (upload == Upload.RESPOND) {
+                respond(out, "{\"total\":7}");
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                if (c < 0) {
+                    throw new IOException("connection closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static void respond(OutputStream out, String json) throws IOException {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            out.write(head.getBytes(StandardCharsets.UTF_8));
+            out.write(body);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
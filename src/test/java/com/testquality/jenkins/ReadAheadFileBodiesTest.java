@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 BitModern.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.testquality.jenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import okhttp3.MediaType;
+import okio.Buffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ReadAheadFileBodiesTest {
+
+    private static final MediaType XML = MediaType.parse("text/xml");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+    @Test
+    public void writesFileContents() throws IOException {
+        List<File> files = reportFiles();
+        try (ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2)) {
+            assertArrayEquals(expected.toByteArray(), writeAll(bodies, files.size()));
+        }
+    }
+
+    @Test
+    public void resendsIdenticalBytesOnSecondPass() throws IOException {
+        List<File> files = reportFiles();
+        try (ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2)) {
+            assertArrayEquals(expected.toByteArray(), writeAll(bodies, files.size()));
+            assertArrayEquals(expected.toByteArray(), writeAll(bodies, files.size()));
+        }
+    }
+
+    @Test
+    public void restartsAfterAbandonedPass() throws IOException {
+        List<File> files = reportFiles();
+        try (ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2)) {
+            writeAll(bodies, 2);
+            assertArrayEquals(expected.toByteArray(), writeAll(bodies, files.size()));
+            assertEquals(2 * ReadAheadFileBodies.BUFFERS_PER_FILE, bodies.idleBuffers());
+        }
+    }
+
+    @Test(timeout = 10000, expected = InterruptedIOException.class)
+    public void writingCancelledPartFails() throws IOException {
+        List<File> files = reportFiles();
+        ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 4);
+        // parts 1 to 3 are read ahead while part 0 is written
+        writeAll(bodies, 1);
+        bodies.close();
+        bodies.body(2).writeTo(new Buffer());
+    }
+
+    @Test(timeout = 10000, expected = InterruptedIOException.class)
+    public void writingAfterCloseFails() throws IOException {
+        List<File> files = reportFiles();
+        ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2);
+        writeAll(bodies, 1);
+        bodies.close();
+        bodies.body(4).writeTo(new Buffer());
+    }
+
+    @Test
+    public void reportsContentLength() throws IOException {
+        List<File> files = reportFiles();
+        try (ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2)) {
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(files.get(i).length(), bodies.body(i).contentLength());
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnMissingFile() throws IOException {
+        List<File> files = new ArrayList<>();
+        files.add(reportFile(1000));
+        files.add(new File(folder.getRoot(), "missing.xml"));
+        try (ReadAheadFileBodies bodies = new ReadAheadFileBodies(XML, files, 2)) {
+            writeAll(bodies, files.size());
+        }
+    }
+
+    /**
+     * An empty file, small files and one larger than a single file's share
+     * of the buffer pool, with more files than the read-ahead window.
+     */
+    private List<File> reportFiles() throws IOException {
+        int large = ReadAheadFileBodies.BUFFERS_PER_FILE * ReadAheadFileBodies.BUFFER_SIZE * 3 + 17;
+        List<File> files = new ArrayList<>();
+        for (int size : Arrays.asList(1000, 0, large, 5, ReadAheadFileBodies.BUFFER_SIZE, 70000)) {
+            files.add(reportFile(size));
+        }
+        return files;
+    }
+
+    private File reportFile(int size) throws IOException {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        expected.write(content);
+        return file;
+    }
+
+    private static byte[] writeAll(ReadAheadFileBodies bodies, int count) throws IOException {
+        Buffer sink = new Buffer();
+        for (int i = 0; i < count; i++) {
+            bodies.body(i).writeTo(sink);
+        }
+        return sink.readByteArray();
+    }
+}